@@ -6,6 +6,14 @@ import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.SerializedName;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
 
 import java.io.*;
 import java.net.URI;
@@ -16,28 +24,72 @@ import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
-public class CrptApi {
+public class CrptApi implements AutoCloseable {
     private static final String API_URL = "https://ismp.crpt.ru/api/v3/lk/documents/create";
+    private static final String PRODUCT_GROUP = "clothes";
+    private static final AtomicLong CALL_IDS = new AtomicLong();
+    private static final int PLATFORM_POOL_SIZE = 16;
 
     private final Gson gson;
-    private long lastRequestTime = 0;
+    // время, зарезервированное под последний запрос; слоты выдаются через CAS без блокировок
+    private final AtomicLong lastRequestTime = new AtomicLong();
     private final long minDelayMs;
     private final String authToken;
+    private final String apiUrl;
     private final HttpClient httpClient;
+    private final ExecutorService submissionExecutor;
+    private final boolean ownsSubmissionExecutor;
 
     public CrptApi(TimeUnit timeUnit, int requestLimit, String authToken) {
+        this(timeUnit, requestLimit, authToken, ExecutionMode.PLATFORM);
+    }
+
+    public CrptApi(TimeUnit timeUnit, int requestLimit, String authToken, ExecutionMode executionMode) {
+        this(timeUnit, requestLimit, authToken, newExecutor(executionMode), true, API_URL, null);
+    }
+
+    // исполнитель submitDocument задает вызывающий код и сам же его закрывает, close() его не трогает
+    public CrptApi(TimeUnit timeUnit, int requestLimit, String authToken, ExecutorService submissionExecutor) {
+        this(timeUnit, requestLimit, authToken, submissionExecutor, false, API_URL, null);
+    }
+
+    CrptApi(TimeUnit timeUnit, int requestLimit, String authToken, ExecutionMode executionMode,
+            String apiUrl, HttpClient httpClient) {
+        this(timeUnit, requestLimit, authToken, newExecutor(executionMode), true, apiUrl, httpClient);
+    }
+
+    CrptApi(TimeUnit timeUnit, int requestLimit, String authToken, ExecutorService submissionExecutor,
+            boolean ownsSubmissionExecutor, String apiUrl, HttpClient httpClient) {
         if (requestLimit <= 0) {
             throw new IllegalArgumentException("Request limit must be positive");
         }
         if (authToken == null || authToken.trim().isEmpty()) {
             throw new IllegalArgumentException("Auth token cannot be null or empty");
         }
+        if (submissionExecutor == null) {
+            throw new IllegalArgumentException("Submission executor cannot be null");
+        }
 
         this.authToken = authToken.trim();
-        httpClient = HttpClient.newHttpClient();
+        this.apiUrl = apiUrl;
+        this.httpClient = httpClient == null ? HttpClient.newHttpClient() : httpClient;
+        this.submissionExecutor = submissionExecutor;
+        this.ownsSubmissionExecutor = ownsSubmissionExecutor;
 
         long timeUnitInMs = timeUnit.toMillis(1);
         this.minDelayMs = timeUnitInMs / requestLimit;
@@ -68,54 +120,160 @@ public class CrptApi {
     }
 
     public CreateDocumentResponse createDocument(Document document, String signature) throws Exception {
-        waitIfNeeded();
-
-        String documentJson = gson.toJson(document);
+        long callId = CALL_IDS.incrementAndGet();
+        String docId = document.docId;
+
+        waitIfNeeded(callId, docId);
+
+        byte[] documentBytes = null;
+        SerializationEvent serializationEvent = new SerializationEvent();
+        serializationEvent.begin();
+        try {
+            documentBytes = gson.toJson(document).getBytes(StandardCharsets.UTF_8);
+        } finally {
+            serializationEvent.end();
+            if (serializationEvent.shouldCommit()) {
+                serializationEvent.productCount = document.products == null ? 0 : document.products.size();
+                serializationEvent.payloadSize = documentBytes == null ? 0 : documentBytes.length;
+                serializationEvent.commit(callId, docId);
+            }
+        }
+
+        String encodedDocument = null;
+        EncodingEvent encodingEvent = new EncodingEvent();
+        encodingEvent.begin();
+        try {
+            encodedDocument = org.apache.commons.codec.binary.Base64.encodeBase64String(documentBytes);
+        } finally {
+            encodingEvent.end();
+            if (encodingEvent.shouldCommit()) {
+                // Base64 состоит только из ASCII, поэтому длина строки совпадает с размером в байтах
+                encodingEvent.payloadSize = encodedDocument == null ? 0 : encodedDocument.length();
+                encodingEvent.commit(callId, docId);
+            }
+        }
+
+        byte[] requestBody = null;
+        RequestWrapEvent requestWrapEvent = new RequestWrapEvent();
+        requestWrapEvent.begin();
+        try {
+            CreateDocumentRequest request = new CreateDocumentRequest(
+                    DocumentFormat.MANUAL,
+                    encodedDocument,
+                    PRODUCT_GROUP,
+                    signature,
+                    "LP_INTRODUCE_GOODS"
+            );
+
+            requestBody = gson.toJson(request).getBytes(StandardCharsets.UTF_8);
+        } finally {
+            requestWrapEvent.end();
+            if (requestWrapEvent.shouldCommit()) {
+                requestWrapEvent.payloadSize = requestBody == null ? 0 : requestBody.length;
+                requestWrapEvent.commit(callId, docId);
+            }
+        }
+
+        String responseJson = sendHttpRequest(requestBody, callId, docId);
+
+        CreateDocumentResponse response = null;
+        ResponseParseEvent responseParseEvent = new ResponseParseEvent();
+        responseParseEvent.begin();
+        try {
+            response = gson.fromJson(responseJson, CreateDocumentResponse.class);
+        } finally {
+            responseParseEvent.end();
+            if (responseParseEvent.shouldCommit()) {
+                responseParseEvent.payloadSize = responseJson == null
+                        ? 0 : responseJson.getBytes(StandardCharsets.UTF_8).length;
+                responseParseEvent.createdDocId = response == null ? null : response.getDocumentId();
+                responseParseEvent.commit(callId, docId);
+            }
+        }
+
+        return response;
+    }
 
-        String encodedDocument = org.apache.commons.codec.binary.Base64.encodeBase64String(
-                documentJson.getBytes(StandardCharsets.UTF_8)
-        );
+    public CompletableFuture<CreateDocumentResponse> submitDocument(Document document, String signature) {
+        return submit(() -> createDocument(document, signature));
+    }
 
-        CreateDocumentRequest request = new CreateDocumentRequest(
-                DocumentFormat.MANUAL,
-                encodedDocument,
-                "clothes",
-                signature,
-                "LP_INTRODUCE_GOODS"
-        );
+    <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        submissionExecutor.execute(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
 
-        String requestBody = gson.toJson(request);
-        String responseJson = sendHttpRequest(requestBody);
+    @Override
+    public void close() {
+        if (ownsSubmissionExecutor) {
+            submissionExecutor.close();
+        }
+        httpClient.close();
+    }
 
-        return gson.fromJson(responseJson, CreateDocumentResponse.class);
+    private static ExecutorService newExecutor(ExecutionMode executionMode) {
+        if (executionMode == null) {
+            throw new IllegalArgumentException("Execution mode cannot be null");
+        }
+        return executionMode.newExecutor();
     }
 
-    private void waitIfNeeded() throws InterruptedException {
-        long currentTime = System.currentTimeMillis();
-        long timeSinceLastRequest = currentTime - lastRequestTime;
+    private void waitIfNeeded(long callId, String docId) throws InterruptedException {
+        LimiterWaitEvent event = new LimiterWaitEvent();
+        event.begin();
 
-        if (timeSinceLastRequest < minDelayMs) {
-            long sleepTime = minDelayMs - timeSinceLastRequest;
-            Thread.sleep(sleepTime);
+        long currentTime = System.currentTimeMillis();
+        long requestTime = lastRequestTime.accumulateAndGet(currentTime,
+                (last, now) -> Math.max(now, last + minDelayMs));
+        long sleepTime = requestTime - currentTime;
+
+        try {
+            if (sleepTime > 0) {
+                Thread.sleep(sleepTime);
+            }
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.sleepTime = sleepTime;
+                event.commit(callId, docId);
+            }
         }
-
-        lastRequestTime = System.currentTimeMillis();
     }
 
-    private String sendHttpRequest(String requestBody) throws Exception {
+    private String sendHttpRequest(byte[] requestBody, long callId, String docId) throws Exception {
         HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
-                .uri(URI.create(API_URL + "?pg=clothes"))
+                .uri(URI.create(apiUrl + "?pg=" + PRODUCT_GROUP))
                 .header("Content-Type", "application/json")
                 .header("Accept", "application/json")
                 .timeout(Duration.ofSeconds(30))
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody, StandardCharsets.UTF_8));
+                .POST(HttpRequest.BodyPublishers.ofByteArray(requestBody));
 
         requestBuilder.header("Authorization", "Bearer " + authToken);
 
         HttpRequest request = requestBuilder.build();
 
-        HttpResponse<String> response = httpClient.send(request,
-                HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        HttpResponse<String> response = null;
+        HttpSendEvent event = new HttpSendEvent();
+        event.begin();
+        try {
+            response = httpClient.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.payloadSize = requestBody.length;
+                if (response != null) {
+                    event.statusCode = response.statusCode();
+                }
+                event.commit(callId, docId);
+            }
+        }
 
         if (response.statusCode() == 401) {
             throw new RuntimeException(
@@ -132,12 +290,318 @@ public class CrptApi {
         }
     }
 
+    // PLATFORM - фиксированный пул из PLATFORM_POOL_SIZE потоков ОС, создаваемых только при первых submitDocument:
+    // не больше 16 отправок одновременно ждут лимитер или HTTP, остальные стоят в очереди пула.
+    // Другой размер пула задается конструктором с собственным ExecutorService.
+    // VIRTUAL запускает каждую отправку в отдельном виртуальном потоке и не ограничивает их число
+    public enum ExecutionMode {
+        PLATFORM {
+            @Override
+            ExecutorService newExecutor() {
+                return Executors.newFixedThreadPool(PLATFORM_POOL_SIZE, Thread.ofPlatform().daemon().factory());
+            }
+        },
+        VIRTUAL {
+            @Override
+            ExecutorService newExecutor() {
+                return Executors.newVirtualThreadPerTaskExecutor();
+            }
+        };
+
+        abstract ExecutorService newExecutor();
+    }
+
+    // =================== АГРЕГАЦИЯ ДОКУМЕНТОВ ===================
+    // Небольшие документы с одинаковой шапкой (owner_inn, producer_inn, participant_inn, production_type,
+    // production_date, doc_type, doc_status, importRequest, description) и товарной группой копятся не дольше
+    // linger и не больше maxProducts товаров, затем отправляются одним документом. doc_id, reg_number и reg_date
+    // у объединенного документа не заполняются. Объединенный документ подписывается заново через signer,
+    // одиночный уходит с исходной подписью. Каждый вызывающий получает собственную копию ответа.
+
+    public static class DocumentBatcher implements AutoCloseable {
+        private final BiFunction<Document, String, CompletableFuture<CreateDocumentResponse>> submitter;
+        private final Function<Document, String> signer;
+        private final long lingerMs;
+        private final int maxProducts;
+        private final ScheduledExecutorService scheduler;
+        // подпись и отправка по linger не занимают единственный поток планировщика, close() дожидается их
+        private final ExecutorService flushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<BatchKey, Batch> pending = new HashMap<>();
+        private boolean closed;
+
+        public DocumentBatcher(CrptApi api, Duration linger, int maxProducts, Function<Document, String> signer) {
+            this(api == null ? null : api::submitDocument, linger, maxProducts, signer);
+        }
+
+        DocumentBatcher(BiFunction<Document, String, CompletableFuture<CreateDocumentResponse>> submitter,
+                        Duration linger, int maxProducts, Function<Document, String> signer) {
+            if (submitter == null) {
+                throw new IllegalArgumentException("Api cannot be null");
+            }
+            if (linger == null || linger.isNegative()) {
+                throw new IllegalArgumentException("Linger must be non-negative");
+            }
+            if (maxProducts <= 0) {
+                throw new IllegalArgumentException("Max products must be positive");
+            }
+            if (signer == null) {
+                throw new IllegalArgumentException("Signer cannot be null");
+            }
+
+            this.submitter = submitter;
+            this.signer = signer;
+            this.lingerMs = linger.toMillis();
+            this.maxProducts = maxProducts;
+            scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().factory());
+        }
+
+        public CompletableFuture<CreateDocumentResponse> submit(Document document, String signature) {
+            int productCount = productCount(document);
+            BatchKey key = BatchKey.of(document);
+            Entry entry = new Entry(document, signature, productCount);
+            List<Batch> ready = new ArrayList<>(2);
+            boolean direct = productCount >= maxProducts;
+
+            lock.lock();
+            try {
+                if (closed) {
+                    return CompletableFuture.failedFuture(new IllegalStateException("Batcher is closed"));
+                }
+                if (!direct) {
+                    Batch batch = pending.get(key);
+                    if (batch != null && batch.productCount + productCount > maxProducts) {
+                        pending.remove(key);
+                        ready.add(batch);
+                        batch = null;
+                    }
+                    if (batch == null) {
+                        batch = new Batch();
+                        pending.put(key, batch);
+                        Batch scheduled = batch;
+                        scheduler.schedule(() -> flushIfPending(key, scheduled), lingerMs, TimeUnit.MILLISECONDS);
+                    }
+                    batch.add(entry);
+                    if (batch.productCount >= maxProducts) {
+                        pending.remove(key);
+                        ready.add(batch);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (direct) {
+                try {
+                    return submitter.apply(document, signature);
+                } catch (Exception e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            }
+            ready.forEach(this::flush);
+            return entry.future;
+        }
+
+        @Override
+        public void close() {
+            List<Batch> batches;
+            lock.lock();
+            try {
+                closed = true;
+                batches = new ArrayList<>(pending.values());
+                pending.clear();
+            } finally {
+                lock.unlock();
+            }
+
+            scheduler.shutdownNow();
+            for (Batch batch : batches) {
+                flushExecutor.execute(() -> flush(batch));
+            }
+            flushExecutor.close();
+        }
+
+        private void flushIfPending(BatchKey key, Batch batch) {
+            // под той же блокировкой, что и close(): пакет либо передан flushExecutor до его закрытия,
+            // либо уже забран close()
+            lock.lock();
+            try {
+                if (pending.remove(key, batch)) {
+                    flushExecutor.execute(() -> flush(batch));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void flush(Batch batch) {
+            CompletableFuture<CreateDocumentResponse> response;
+            try {
+                if (batch.entries.size() == 1) {
+                    Entry single = batch.entries.getFirst();
+                    response = submitter.apply(single.document, single.signature);
+                } else {
+                    Document merged = merge(batch.entries);
+                    response = submitter.apply(merged, signer.apply(merged));
+                }
+            } catch (Exception e) {
+                response = CompletableFuture.failedFuture(e);
+            }
+
+            response.whenComplete((result, error) -> {
+                for (Entry entry : batch.entries) {
+                    if (error != null) {
+                        entry.future.completeExceptionally(error);
+                    } else {
+                        entry.future.complete(copy(result));
+                    }
+                }
+            });
+        }
+
+        private static Document merge(List<Entry> entries) {
+            Document first = entries.getFirst().document;
+            List<Product> products = new ArrayList<>();
+            for (Entry entry : entries) {
+                if (entry.document.products != null) {
+                    products.addAll(entry.document.products);
+                }
+            }
+
+            Document merged = new Document(first.description, null, first.docStatus, first.importRequest,
+                    first.ownerInn, first.participantInn, first.producerInn, first.productionDate,
+                    products, null, null);
+            merged.setDocType(first.docType);
+            merged.setProductionType(first.productionType);
+            return merged;
+        }
+
+        private static CreateDocumentResponse copy(CreateDocumentResponse response) {
+            if (response == null) {
+                return null;
+            }
+
+            CreateDocumentResponse copy = new CreateDocumentResponse();
+            copy.setValue(response.getValue());
+            copy.setCode(response.getCode());
+            copy.setErrorMessage(response.getErrorMessage());
+            copy.setDescription(response.getDescription());
+            return copy;
+        }
+
+        private static int productCount(Document document) {
+            return document.products == null ? 0 : document.products.size();
+        }
+
+        private record BatchKey(String ownerInn, String producerInn, String participantInn,
+                                String descriptionParticipantInn, String productionType, LocalDate productionDate,
+                                String docType, String docStatus, Boolean importRequest, String productGroup) {
+            static BatchKey of(Document document) {
+                return new BatchKey(document.ownerInn, document.producerInn, document.participantInn,
+                        document.description == null ? null : document.description.getParticipantInn(),
+                        document.productionType, document.productionDate, document.docType, document.docStatus,
+                        document.importRequest, PRODUCT_GROUP);
+            }
+        }
+
+        private record Entry(Document document, String signature, int productCount,
+                             CompletableFuture<CreateDocumentResponse> future) {
+            Entry(Document document, String signature, int productCount) {
+                this(document, signature, productCount, new CompletableFuture<>());
+            }
+        }
+
+        private static class Batch {
+            private final List<Entry> entries = new ArrayList<>();
+            private int productCount;
+
+            void add(Entry entry) {
+                entries.add(entry);
+                productCount += entry.productCount;
+            }
+        }
+    }
+
     private enum DocumentFormat {
         MANUAL,
         XML,
         CSV
     }
 
+    // =================== JFR СОБЫТИЯ ===================
+    // События фаз createDocument выключены по умолчанию и включаются настройками записи JFR,
+    // например: -XX:StartFlightRecording:settings=default,+ru.selsup.an_honest_sign.HttpSend#enabled=true
+
+    @Category({"CrptApi", "createDocument"})
+    @Enabled(false)
+    @StackTrace(false)
+    abstract static class CreateDocumentPhaseEvent extends Event {
+        @Label("Call Id")
+        long callId;
+        @Label("Document Id")
+        String docId;
+
+        void commit(long callId, String docId) {
+            this.callId = callId;
+            this.docId = docId;
+            commit();
+        }
+    }
+
+    @Name("ru.selsup.an_honest_sign.LimiterWait")
+    @Label("Limiter Wait")
+    static final class LimiterWaitEvent extends CreateDocumentPhaseEvent {
+        @Label("Sleep Time")
+        @Timespan(Timespan.MILLISECONDS)
+        long sleepTime;
+    }
+
+    @Name("ru.selsup.an_honest_sign.Serialization")
+    @Label("Document Serialization")
+    static final class SerializationEvent extends CreateDocumentPhaseEvent {
+        @Label("Product Count")
+        int productCount;
+        @Label("Payload Size")
+        @DataAmount
+        long payloadSize;
+    }
+
+    @Name("ru.selsup.an_honest_sign.Encoding")
+    @Label("Base64 Encoding")
+    static final class EncodingEvent extends CreateDocumentPhaseEvent {
+        @Label("Payload Size")
+        @DataAmount
+        long payloadSize;
+    }
+
+    @Name("ru.selsup.an_honest_sign.RequestWrap")
+    @Label("Request Wrap")
+    static final class RequestWrapEvent extends CreateDocumentPhaseEvent {
+        @Label("Payload Size")
+        @DataAmount
+        long payloadSize;
+    }
+
+    @Name("ru.selsup.an_honest_sign.HttpSend")
+    @Label("HTTP Send")
+    static final class HttpSendEvent extends CreateDocumentPhaseEvent {
+        @Label("Payload Size")
+        @DataAmount
+        long payloadSize;
+        @Label("Status Code")
+        int statusCode = -1;
+    }
+
+    @Name("ru.selsup.an_honest_sign.ResponseParse")
+    @Label("Response Parse")
+    static final class ResponseParseEvent extends CreateDocumentPhaseEvent {
+        @Label("Payload Size")
+        @DataAmount
+        long payloadSize;
+        @Label("Created Document Id")
+        String createdDocId;
+    }
+
     // =================== POJO КЛАССЫ ===================
 
     private static class CreateDocumentRequest {
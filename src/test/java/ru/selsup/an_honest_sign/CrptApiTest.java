@@ -3,12 +3,52 @@ package ru.selsup.an_honest_sign;
 import static org.junit.jupiter.api.Assertions.*;
 
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.function.Executable;
 
+import com.sun.net.httpserver.HttpServer;
+import jdk.jfr.EventType;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class CrptApiTest {
 
@@ -61,6 +101,41 @@ class CrptApiTest {
 
             assertEquals("Auth token cannot be null or empty", exception.getMessage());
         }
+
+        @Test
+        @DisplayName("Ошибка при null режиме исполнения")
+        void shouldFailWithNullExecutionMode() {
+            IllegalArgumentException exception = assertThrows(
+                    IllegalArgumentException.class,
+                    () -> new CrptApi(TimeUnit.MINUTES, 100, VALID_TOKEN, (CrptApi.ExecutionMode) null)
+            );
+
+            assertEquals("Execution mode cannot be null", exception.getMessage());
+        }
+
+        @Test
+        @DisplayName("Ошибка при null исполнителе отправок")
+        void shouldFailWithNullSubmissionExecutor() {
+            IllegalArgumentException exception = assertThrows(
+                    IllegalArgumentException.class,
+                    () -> new CrptApi(TimeUnit.MINUTES, 100, VALID_TOKEN, (ExecutorService) null)
+            );
+
+            assertEquals("Submission executor cannot be null", exception.getMessage());
+        }
+
+        @Test
+        @DisplayName("Собственный исполнитель не закрывается вместе с клиентом")
+        void shouldNotShutdownCallerExecutor() {
+            ExecutorService executor = Executors.newFixedThreadPool(64);
+            try {
+                new CrptApi(TimeUnit.MINUTES, 100, VALID_TOKEN, executor).close();
+
+                assertFalse(executor.isShutdown());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
     }
 
     @Nested
@@ -145,4 +220,488 @@ class CrptApiTest {
             assertEquals("01234567890123456789", document.getProducts().getFirst().getUitCode());
         }
     }
-}
\ No newline at end of file
+
+    @Nested
+    @DisplayName("Тесты JFR событий")
+    class JfrEventTests {
+
+        @Test
+        @DisplayName("События фаз выключены по умолчанию")
+        void shouldBeDisabledByDefault() {
+            assertFalse(EventType.getEventType(CrptApi.LimiterWaitEvent.class).isEnabled());
+            assertFalse(EventType.getEventType(CrptApi.SerializationEvent.class).isEnabled());
+            assertFalse(EventType.getEventType(CrptApi.EncodingEvent.class).isEnabled());
+            assertFalse(EventType.getEventType(CrptApi.RequestWrapEvent.class).isEnabled());
+            assertFalse(EventType.getEventType(CrptApi.HttpSendEvent.class).isEnabled());
+            assertFalse(EventType.getEventType(CrptApi.ResponseParseEvent.class).isEnabled());
+        }
+
+        @Test
+        @DisplayName("Событие включается настройками записи")
+        void shouldBeEnabledByRecording() {
+            try (Recording recording = new Recording()) {
+                recording.enable("ru.selsup.an_honest_sign.HttpSend");
+                recording.start();
+
+                assertTrue(new CrptApi.HttpSendEvent().isEnabled());
+                assertFalse(new CrptApi.EncodingEvent().isEnabled());
+            }
+        }
+
+        @Test
+        @DisplayName("Фазы вызова связаны callId и docId, размеры в байтах")
+        void shouldCorrelatePhasesOfOneCall() throws Throwable {
+            byte[] responseBody = "{\"value\":\"ДОКУМЕНТ_1\"}".getBytes(StandardCharsets.UTF_8);
+            HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", exchange -> {
+                exchange.getRequestBody().readAllBytes();
+                exchange.sendResponseHeaders(200, responseBody.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(responseBody);
+                }
+            });
+            server.start();
+
+            CrptApi.Document document = new CrptApi.Document();
+            document.setDocId("TEST_DOC_001");
+            document.setProducts(List.of(new CrptApi.Product()));
+
+            try (CrptApi api = new CrptApi(TimeUnit.SECONDS, 1000, VALID_TOKEN, CrptApi.ExecutionMode.PLATFORM,
+                    "http://127.0.0.1:" + server.getAddress().getPort(), HttpClient.newHttpClient())) {
+                List<RecordedEvent> events = record(() -> api.createDocument(document, "signature"));
+
+                assertEquals(6, events.size());
+                long callId = events.getFirst().getLong("callId");
+                for (RecordedEvent event : events) {
+                    assertEquals(callId, event.getLong("callId"));
+                    assertEquals("TEST_DOC_001", event.getString("docId"));
+                }
+
+                RecordedEvent httpSend = find(events, "ru.selsup.an_honest_sign.HttpSend");
+                assertEquals(200, httpSend.getInt("statusCode"));
+                RecordedEvent responseParse = find(events, "ru.selsup.an_honest_sign.ResponseParse");
+                assertEquals(responseBody.length, responseParse.getLong("payloadSize"));
+                assertEquals("ДОКУМЕНТ_1", responseParse.getString("createdDocId"));
+                assertEquals(1, find(events, "ru.selsup.an_honest_sign.Serialization").getInt("productCount"));
+            } finally {
+                server.stop(0);
+            }
+        }
+
+        @Test
+        @DisplayName("Событие отправки записывается при ошибке соединения")
+        void shouldRecordFailedHttpSend() throws Throwable {
+            int closedPort;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                closedPort = socket.getLocalPort();
+            }
+
+            try (CrptApi api = new CrptApi(TimeUnit.SECONDS, 1000, VALID_TOKEN, CrptApi.ExecutionMode.PLATFORM,
+                    "http://127.0.0.1:" + closedPort, HttpClient.newHttpClient())) {
+                List<RecordedEvent> events = record(() -> assertThrows(Exception.class,
+                        () -> api.createDocument(new CrptApi.Document(), "signature")));
+
+                RecordedEvent httpSend = find(events, "ru.selsup.an_honest_sign.HttpSend");
+                assertEquals(-1, httpSend.getInt("statusCode"));
+                assertTrue(httpSend.getLong("payloadSize") > 0);
+            }
+        }
+
+        private List<RecordedEvent> record(Executable call) throws Throwable {
+            Path file = Files.createTempFile("crpt-api", ".jfr");
+            try (Recording recording = new Recording()) {
+                for (String phase : List.of("LimiterWait", "Serialization", "Encoding",
+                        "RequestWrap", "HttpSend", "ResponseParse")) {
+                    recording.enable("ru.selsup.an_honest_sign." + phase);
+                }
+                recording.start();
+                call.execute();
+                recording.stop();
+                recording.dump(file);
+                return RecordingFile.readAllEvents(file);
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        private RecordedEvent find(List<RecordedEvent> events, String name) {
+            return events.stream()
+                    .filter(event -> event.getEventType().getName().equals(name))
+                    .findFirst()
+                    .orElseThrow();
+        }
+    }
+
+    @Nested
+    @DisplayName("Бенчмарк виртуальных потоков")
+    class VirtualThreadBenchmark {
+        private static final int SUBMISSIONS = 10_000;
+
+        @Test
+        @DisplayName("10k ожидающих submitDocument без 10k потоков ОС и без пиннинга")
+        void shouldRunPendingSubmissionsWithoutOsThreads() throws Exception {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            BlockingHttpClient httpClient = new BlockingHttpClient();
+            CountDownLatch started = new CountDownLatch(SUBMISSIONS);
+            ExecutorService executor = Executors.newThreadPerTaskExecutor(task -> Thread.ofVirtual().unstarted(() -> {
+                started.countDown();
+                task.run();
+            }));
+            Path file = Files.createTempFile("crpt-api-pinning", ".jfr");
+
+            // 1000 запросов в секунду: minDelayMs = 1, отправки выстраиваются в очередь через sleep в waitIfNeeded
+            try (Recording recording = new Recording();
+                 CrptApi api = new CrptApi(TimeUnit.SECONDS, 1000, VALID_TOKEN, executor, true,
+                         "http://localhost", httpClient)) {
+                recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO);
+                recording.start();
+
+                long start = System.nanoTime();
+                List<CompletableFuture<CrptApi.CreateDocumentResponse>> futures = new ArrayList<>(SUBMISSIONS);
+                for (int i = 0; i < SUBMISSIONS; i++) {
+                    futures.add(api.submitDocument(new CrptApi.Document(), "signature"));
+                }
+
+                int osThreads;
+                int inLimiter;
+                try {
+                    assertTrue(started.await(1, TimeUnit.MINUTES));
+                    osThreads = threads.getThreadCount();
+                    // все отправки уже запущены, send держится до release: кто не дошел до send, спит в лимитере
+                    inLimiter = SUBMISSIONS - httpClient.calls.get();
+                } finally {
+                    httpClient.release.countDown();
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(1, TimeUnit.MINUTES);
+                long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+                recording.stop();
+                recording.dump(file);
+
+                assertTrue(RecordingFile.readAllEvents(file).isEmpty());
+                assertTrue(inLimiter >= SUBMISSIONS / 2);
+                assertTrue(osThreads < SUBMISSIONS / 10);
+                assertTrue(elapsedMs >= SUBMISSIONS - 1);
+                assertTrue(futures.stream().allMatch(future -> "DOC".equals(future.join().getDocumentId())));
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    // HTTP клиент, который держит каждый send до release
+    private static class BlockingHttpClient extends HttpClient {
+        private final AtomicInteger calls = new AtomicInteger();
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler)
+                throws InterruptedException {
+            calls.incrementAndGet();
+            release.await();
+            return (HttpResponse<T>) new StubResponse(request);
+        }
+
+        @Override
+        public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+                                                                HttpResponse.BodyHandler<T> responseBodyHandler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+                                                                HttpResponse.BodyHandler<T> responseBodyHandler,
+                                                                HttpResponse.PushPromiseHandler<T> pushPromiseHandler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Optional<CookieHandler> cookieHandler() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Optional<Duration> connectTimeout() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Redirect followRedirects() {
+            return Redirect.NEVER;
+        }
+
+        @Override
+        public Optional<ProxySelector> proxy() {
+            return Optional.empty();
+        }
+
+        @Override
+        public SSLContext sslContext() {
+            return null;
+        }
+
+        @Override
+        public SSLParameters sslParameters() {
+            return null;
+        }
+
+        @Override
+        public Optional<Authenticator> authenticator() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Version version() {
+            return Version.HTTP_1_1;
+        }
+
+        @Override
+        public Optional<Executor> executor() {
+            return Optional.empty();
+        }
+    }
+
+    private record StubResponse(HttpRequest request) implements HttpResponse<String> {
+        @Override
+        public int statusCode() {
+            return 200;
+        }
+
+        @Override
+        public Optional<HttpResponse<String>> previousResponse() {
+            return Optional.empty();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return HttpHeaders.of(Map.of(), (name, value) -> true);
+        }
+
+        @Override
+        public String body() {
+            return "{\"value\":\"DOC\"}";
+        }
+
+        @Override
+        public Optional<SSLSession> sslSession() {
+            return Optional.empty();
+        }
+
+        @Override
+        public URI uri() {
+            return request.uri();
+        }
+
+        @Override
+        public HttpClient.Version version() {
+            return HttpClient.Version.HTTP_1_1;
+        }
+    }
+
+    @Nested
+    @DisplayName("Тесты агрегации документов")
+    class DocumentBatcherTests {
+        private final List<CrptApi.Document> submitted = new CopyOnWriteArrayList<>();
+        private final List<String> signatures = new CopyOnWriteArrayList<>();
+
+        private CompletableFuture<CrptApi.CreateDocumentResponse> submit(CrptApi.Document document, String signature) {
+            submitted.add(document);
+            signatures.add(signature);
+            CrptApi.CreateDocumentResponse response = new CrptApi.CreateDocumentResponse();
+            response.setValue("DOC_" + submitted.size());
+            return CompletableFuture.completedFuture(response);
+        }
+
+        private CrptApi.Document document(String ownerInn, int products) {
+            CrptApi.Document document = new CrptApi.Document();
+            document.setOwnerInn(ownerInn);
+            document.setProducerInn("1111111111");
+            List<CrptApi.Product> list = new ArrayList<>();
+            for (int i = 0; i < products; i++) {
+                CrptApi.Product product = new CrptApi.Product();
+                product.setUitCode(ownerInn + "_" + i);
+                list.add(product);
+            }
+            document.setProducts(list);
+            return document;
+        }
+
+        @Test
+        @DisplayName("Ошибка при неположительном размере пакета")
+        void shouldFailWithZeroMaxProducts() {
+            IllegalArgumentException exception = assertThrows(
+                    IllegalArgumentException.class,
+                    () -> new CrptApi.DocumentBatcher(this::submit, Duration.ofMillis(10), 0, d -> "sig")
+            );
+
+            assertEquals("Max products must be positive", exception.getMessage());
+        }
+
+        @Test
+        @DisplayName("Совместимые документы объединяются по истечении linger")
+        void shouldMergeCompatibleDocuments() throws Exception {
+            try (CrptApi.DocumentBatcher batcher =
+                         new CrptApi.DocumentBatcher(this::submit, Duration.ofMillis(50), 100, d -> "merged")) {
+                CrptApi.Document firstDocument = document("1234567890", 1);
+                firstDocument.setDocId("DOC_A");
+                firstDocument.setRegNumber("REG_A");
+                CompletableFuture<CrptApi.CreateDocumentResponse> first = batcher.submit(firstDocument, "s1");
+                CompletableFuture<CrptApi.CreateDocumentResponse> second = batcher.submit(document("1234567890", 2), "s2");
+
+                assertEquals("DOC_1", first.get(1, TimeUnit.SECONDS).getDocumentId());
+                assertEquals("DOC_1", second.get(1, TimeUnit.SECONDS).getDocumentId());
+                assertNotSame(first.get(), second.get());
+                assertEquals(1, submitted.size());
+                assertEquals(3, submitted.getFirst().getProducts().size());
+                assertNull(submitted.getFirst().getDocId());
+                assertNull(submitted.getFirst().getRegNumber());
+                assertEquals("merged", signatures.getFirst());
+            }
+        }
+
+        @Test
+        @DisplayName("Несовместимые документы отправляются раздельно с исходной подписью")
+        void shouldNotMergeIncompatibleDocuments() throws Exception {
+            try (CrptApi.DocumentBatcher batcher =
+                         new CrptApi.DocumentBatcher(this::submit, Duration.ofMillis(50), 100, d -> "merged")) {
+                CompletableFuture<CrptApi.CreateDocumentResponse> first = batcher.submit(document("1234567890", 1), "s1");
+                CompletableFuture<CrptApi.CreateDocumentResponse> second = batcher.submit(document("9876543210", 1), "s2");
+
+                assertNotEquals(first.get(1, TimeUnit.SECONDS).getDocumentId(),
+                        second.get(1, TimeUnit.SECONDS).getDocumentId());
+                assertEquals(2, submitted.size());
+                assertTrue(signatures.containsAll(List.of("s1", "s2")));
+            }
+        }
+
+        @Test
+        @DisplayName("Пакет отправляется сразу при достижении порога")
+        void shouldFlushWhenThresholdReached() throws Exception {
+            try (CrptApi.DocumentBatcher batcher =
+                         new CrptApi.DocumentBatcher(this::submit, Duration.ofMinutes(1), 3, d -> "merged")) {
+                CompletableFuture<CrptApi.CreateDocumentResponse> first = batcher.submit(document("1234567890", 2), "s1");
+                CompletableFuture<CrptApi.CreateDocumentResponse> second = batcher.submit(document("1234567890", 1), "s2");
+
+                assertTrue(first.isDone());
+                assertEquals("DOC_1", second.get().getDocumentId());
+                assertEquals(3, submitted.getFirst().getProducts().size());
+            }
+        }
+
+        @Test
+        @DisplayName("Документы с разной датой производства не объединяются")
+        void shouldNotMergeDocumentsWithDifferentProductionDate() throws Exception {
+            try (CrptApi.DocumentBatcher batcher =
+                         new CrptApi.DocumentBatcher(this::submit, Duration.ofMillis(50), 100, d -> "merged")) {
+                CrptApi.Document firstDocument = document("1234567890", 1);
+                firstDocument.setProductionDate(LocalDate.of(2025, 10, 31));
+                CrptApi.Document secondDocument = document("1234567890", 1);
+                secondDocument.setProductionDate(LocalDate.of(2025, 11, 1));
+
+                CompletableFuture<CrptApi.CreateDocumentResponse> first = batcher.submit(firstDocument, "s1");
+                CompletableFuture<CrptApi.CreateDocumentResponse> second = batcher.submit(secondDocument, "s2");
+                CompletableFuture.allOf(first, second).get(1, TimeUnit.SECONDS);
+
+                assertEquals(2, submitted.size());
+                assertTrue(signatures.containsAll(List.of("s1", "s2")));
+            }
+        }
+
+        @Test
+        @DisplayName("Ошибка подписи передается всем участникам пакета")
+        void shouldFailAllFuturesWhenSignerFails() {
+            try (CrptApi.DocumentBatcher batcher = new CrptApi.DocumentBatcher(this::submit, Duration.ofMinutes(1), 2,
+                    d -> {
+                        throw new IllegalStateException("signer unavailable");
+                    })) {
+                CompletableFuture<CrptApi.CreateDocumentResponse> first = batcher.submit(document("1234567890", 1), "s1");
+                CompletableFuture<CrptApi.CreateDocumentResponse> second = batcher.submit(document("1234567890", 1), "s2");
+
+                for (CompletableFuture<CrptApi.CreateDocumentResponse> future : List.of(first, second)) {
+                    ExecutionException exception = assertThrows(ExecutionException.class, future::get);
+                    assertEquals("signer unavailable", exception.getCause().getMessage());
+                }
+                assertTrue(submitted.isEmpty());
+            }
+        }
+
+        @Test
+        @DisplayName("Ошибка отправки передается всем участникам пакета")
+        void shouldFailAllFuturesWhenSubmissionFails() {
+            try (CrptApi.DocumentBatcher batcher = new CrptApi.DocumentBatcher(
+                    (document, signature) -> CompletableFuture.failedFuture(new RuntimeException("HTTP Error 500")),
+                    Duration.ofMinutes(1), 2, d -> "merged")) {
+                CompletableFuture<CrptApi.CreateDocumentResponse> first = batcher.submit(document("1234567890", 1), "s1");
+                CompletableFuture<CrptApi.CreateDocumentResponse> second = batcher.submit(document("1234567890", 1), "s2");
+
+                for (CompletableFuture<CrptApi.CreateDocumentResponse> future : List.of(first, second)) {
+                    ExecutionException exception = assertThrows(ExecutionException.class, future::get);
+                    assertEquals("HTTP Error 500", exception.getCause().getMessage());
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("Закрытие отправляет накопленное и отклоняет новые документы")
+        void shouldRejectSubmissionsAfterClose() throws Exception {
+            CrptApi.DocumentBatcher batcher =
+                    new CrptApi.DocumentBatcher(this::submit, Duration.ofMinutes(1), 100, d -> "merged");
+            CompletableFuture<CrptApi.CreateDocumentResponse> pending = batcher.submit(document("1234567890", 1), "s1");
+
+            batcher.close();
+
+            assertTrue(pending.isDone());
+            assertEquals("DOC_1", pending.get().getDocumentId());
+            ExecutionException exception = assertThrows(
+                    ExecutionException.class,
+                    () -> batcher.submit(document("1234567890", 1), "s2").get()
+            );
+            assertInstanceOf(IllegalStateException.class, exception.getCause());
+            assertEquals("Batcher is closed", exception.getCause().getMessage());
+            assertEquals(1, submitted.size());
+        }
+
+        @Test
+        @DisplayName("Закрытие дожидается уже начатой отправки по linger")
+        void shouldAwaitInFlightLingerFlushOnClose() throws Exception {
+            CountDownLatch signing = new CountDownLatch(1);
+            CrptApi.DocumentBatcher batcher = new CrptApi.DocumentBatcher(this::submit, Duration.ofMillis(10), 100,
+                    d -> {
+                        signing.countDown();
+                        try {
+                            Thread.sleep(300);
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        return "merged";
+                    });
+            CompletableFuture<CrptApi.CreateDocumentResponse> first = batcher.submit(document("1234567890", 1), "s1");
+            CompletableFuture<CrptApi.CreateDocumentResponse> second = batcher.submit(document("1234567890", 1), "s2");
+
+            assertTrue(signing.await(1, TimeUnit.SECONDS));
+            batcher.close();
+
+            assertEquals(1, submitted.size());
+            assertEquals("merged", signatures.getFirst());
+            assertTrue(first.isDone());
+            assertTrue(second.isDone());
+            assertEquals("DOC_1", second.get().getDocumentId());
+        }
+
+        @Test
+        @DisplayName("Ошибка прямой отправки возвращается через future")
+        void shouldReportDirectSubmissionFailureThroughFuture() {
+            try (CrptApi.DocumentBatcher batcher = new CrptApi.DocumentBatcher(
+                    (document, signature) -> {
+                        throw new RejectedExecutionException("api closed");
+                    },
+                    Duration.ofMinutes(1), 1, d -> "merged")) {
+                CompletableFuture<CrptApi.CreateDocumentResponse> future = batcher.submit(document("1234567890", 1), "s1");
+
+                ExecutionException exception = assertThrows(ExecutionException.class, future::get);
+                assertInstanceOf(RejectedExecutionException.class, exception.getCause());
+            }
+        }
+    }
+}